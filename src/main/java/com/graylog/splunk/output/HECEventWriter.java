@@ -0,0 +1,232 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.graylog.splunk.output;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.graylog2.plugin.Message;
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+/**
+ * Writes Graylog messages as HEC events straight into a StringBuilder.
+ *
+ * The value types Graylog fields usually carry (strings, numbers, booleans, dates, lists
+ * and maps) are written directly; anything else falls back to Gson. Instances are not
+ * thread-safe, each sender thread owns one.
+ */
+public class HECEventWriter {
+
+    // Top-level field names and the fixed event keys repeat across events, so their
+    // escaped "key": form is kept around.
+    private static final int MAX_CACHED_KEYS = 10000;
+    private static final ConcurrentMap<String, String> KEY_CACHE = new ConcurrentHashMap<>();
+
+    private static final DateTimeFormatter ISO_FORMATTER = ISODateTimeFormat.dateTime().withZoneUTC();
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Gson gson = new GsonBuilder().setDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").create();
+    private final String header;
+
+    // Fields of one message commonly share the same timestamp.
+    private long lastDateMillis = Long.MIN_VALUE;
+    private String lastDate;
+
+    public HECEventWriter(String index, String sourcetype, String source) {
+        final StringBuilder sb = new StringBuilder();
+        appendKey(sb, "source");
+        appendValue(sb, source);
+        sb.append(',');
+        appendKey(sb, "sourcetype");
+        appendValue(sb, sourcetype);
+        sb.append(',');
+        appendKey(sb, "index");
+        appendValue(sb, index);
+        this.header = sb.toString();
+    }
+
+    public String toJson(Message message) {
+        final StringBuilder sb = new StringBuilder(256);
+        append(sb, message);
+        return sb.toString();
+    }
+
+    public void append(StringBuilder sb, Message message) {
+        sb.append('{');
+        appendKey(sb, "time");
+        appendEpochSeconds(sb, message.getTimestamp().getMillis());
+        sb.append(',');
+        appendKey(sb, "host");
+        appendValue(sb, message.getSource());
+        sb.append(',').append(header).append(',');
+        appendKey(sb, "event");
+        appendValue(sb, message.getMessage());
+        sb.append(',');
+        appendKey(sb, "fields");
+        sb.append('{');
+
+        boolean first = true;
+        for (Map.Entry<String, Object> field : message.getFields().entrySet()) {
+            if (Message.RESERVED_FIELDS.contains(field.getKey()) || field.getKey().equals(Message.FIELD_STREAMS)) {
+                continue;
+            }
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            appendKey(sb, field.getKey());
+            appendValue(sb, field.getValue());
+        }
+        sb.append("}}");
+    }
+
+    /**
+     * HEC expects the event time in seconds, with milliseconds as the fraction.
+     */
+    static void appendEpochSeconds(StringBuilder sb, long millis) {
+        final long seconds = Math.floorDiv(millis, 1000L);
+        final int fraction = (int) Math.floorMod(millis, 1000L);
+        sb.append(seconds).append('.');
+        if (fraction < 100) {
+            sb.append('0');
+        }
+        if (fraction < 10) {
+            sb.append('0');
+        }
+        sb.append(fraction);
+    }
+
+    private void appendValue(StringBuilder sb, Object value) {
+        if (value == null) {
+            sb.append("null");
+        } else if (value instanceof String) {
+            appendString(sb, (String) value);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            sb.append(((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            final double d = ((Number) value).doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                // Not representable in JSON, keep it readable rather than failing the batch.
+                appendString(sb, Double.toString(d));
+            } else if (value instanceof Float) {
+                sb.append(((Float) value).floatValue());
+            } else {
+                sb.append(d);
+            }
+        } else if (value instanceof Boolean) {
+            sb.append(((Boolean) value).booleanValue());
+        } else if (value instanceof DateTime) {
+            appendDate(sb, ((DateTime) value).getMillis());
+        } else if (value instanceof Date) {
+            appendDate(sb, ((Date) value).getTime());
+        } else if (value instanceof BigDecimal || value instanceof BigInteger) {
+            sb.append(value.toString());
+        } else if (value instanceof Collection) {
+            sb.append('[');
+            boolean first = true;
+            for (Object item : (Collection<?>) value) {
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                appendValue(sb, item);
+            }
+            sb.append(']');
+        } else if (value instanceof Map) {
+            sb.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                // Nested keys are often data rather than field names, so they bypass the cache.
+                appendString(sb, String.valueOf(entry.getKey()));
+                sb.append(':');
+                appendValue(sb, entry.getValue());
+            }
+            sb.append('}');
+        } else {
+            gson.toJson(value, sb);
+        }
+    }
+
+    private void appendDate(StringBuilder sb, long millis) {
+        if (millis != lastDateMillis || lastDate == null) {
+            lastDate = ISO_FORMATTER.print(millis);
+            lastDateMillis = millis;
+        }
+        sb.append('"').append(lastDate).append('"');
+    }
+
+    private static void appendKey(StringBuilder sb, String key) {
+        String escaped = KEY_CACHE.get(key);
+        if (escaped == null) {
+            final StringBuilder keyBuilder = new StringBuilder(key.length() + 3);
+            appendString(keyBuilder, key);
+            escaped = keyBuilder.append(':').toString();
+            if (KEY_CACHE.size() < MAX_CACHED_KEYS) {
+                KEY_CACHE.putIfAbsent(key, escaped);
+            }
+        }
+        sb.append(escaped);
+    }
+
+    static void appendString(StringBuilder sb, String value) {
+        sb.append('"');
+        int start = 0;
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029') {
+                continue;
+            }
+            sb.append(value, start, i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    sb.append("\\u").append(HEX[(c >> 12) & 0xF]).append(HEX[(c >> 8) & 0xF]).append(HEX[(c >> 4) & 0xF]).append(HEX[c & 0xF]);
+            }
+            start = i + 1;
+        }
+        sb.append(value, start, length).append('"');
+    }
+}
@@ -16,12 +16,18 @@
  */
 package com.graylog.splunk.output;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
+import com.graylog.splunk.output.deadletter.DeadLetterWriter;
+import com.graylog.splunk.output.lanes.PriorityLanes;
 import com.graylog.splunk.output.senders.Sender;
 import com.graylog.splunk.output.senders.HECSender;
 
+import java.io.File;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.net.MalformedURLException;
 
 import org.graylog2.plugin.Message;
@@ -29,6 +35,7 @@ import org.graylog2.plugin.configuration.Configuration;
 import org.graylog2.plugin.configuration.ConfigurationRequest;
 import org.graylog2.plugin.configuration.fields.BooleanField;
 import org.graylog2.plugin.configuration.fields.ConfigurationField;
+import org.graylog2.plugin.configuration.fields.NumberField;
 import org.graylog2.plugin.configuration.fields.TextField;
 import org.graylog2.plugin.inputs.annotations.ConfigClass;
 import org.graylog2.plugin.inputs.annotations.FactoryClass;
@@ -44,18 +51,54 @@ public class SplunkHECOutput implements MessageOutput {
     private static final String CK_SPLUNK_HEC_INDEX = "splunk_hec_index";
     private static final String CK_SPLUNK_HEC_SOURCETYPE = "splunk_hec_sourcetype";
     private static final String CK_SPLUNK_HEC_SOURCE = "splunk_hec_source";
+    private static final String CK_SPLUNK_HEC_PRIORITY_LANES = "splunk_hec_priority_lanes";
+    private static final String CK_SPLUNK_HEC_LANE_QUEUE_SIZE = "splunk_hec_lane_queue_size";
+    private static final String CK_SPLUNK_HEC_SHEDDING_LANES = "splunk_hec_shedding_lanes";
+    private static final String CK_SPLUNK_HEC_DEAD_LETTER_DIR = "splunk_hec_dead_letter_dir";
+    private static final String CK_SPLUNK_HEC_DEAD_LETTER_FILE_SIZE = "splunk_hec_dead_letter_file_size";
+    private static final String CK_SPLUNK_HEC_DEAD_LETTER_ROLL_INTERVAL = "splunk_hec_dead_letter_roll_interval";
+
+    // Several outputs, or a recreated one, can be attached to the same stream.
 
     private boolean running = true;
 
     private final Sender sender;
+    private final PriorityLanes lanes;
+    private final MetricRegistry metricRegistry;
 
     @Inject
-    public SplunkHECOutput(@Assisted Configuration configuration) throws MessageOutputConfigurationException, MalformedURLException {
+    public SplunkHECOutput(@Assisted Stream stream, @Assisted Configuration configuration, MetricRegistry metricRegistry) throws MessageOutputConfigurationException, MalformedURLException {
         // Check configuration.
         if (!checkConfiguration(configuration)) {
             throw new MessageOutputConfigurationException("Missing, or incomplete, configuration.");
         }
 
+        // Set up priority lanes.
+        try {
+            lanes = PriorityLanes.parse(
+                configuration.getString(CK_SPLUNK_HEC_PRIORITY_LANES, ""),
+                configuration.getInt(CK_SPLUNK_HEC_LANE_QUEUE_SIZE, 1024),
+                parseLaneNames(configuration.getString(CK_SPLUNK_HEC_SHEDDING_LANES, ""))
+            );
+        } catch (IllegalArgumentException e) {
+            throw new MessageOutputConfigurationException(e.getMessage());
+        }
+        this.metricRegistry = metricRegistry;
+        // Outputs do not learn their own id, so the stream and configuration identify them
+        // across restarts. A restarted output with the same configuration takes over the names.
+        final String metricPrefix = MetricRegistry.name(SplunkHECOutput.class, stream.getId(), Integer.toHexString(configuration.getSource().hashCode()));
+
+        // Set up dead letters, if configured.
+        DeadLetterWriter deadLetterWriter = null;
+        if (configuration.stringIsSet(CK_SPLUNK_HEC_DEAD_LETTER_DIR)) {
+            deadLetterWriter = new DeadLetterWriter(
+                new File(configuration.getString(CK_SPLUNK_HEC_DEAD_LETTER_DIR)),
+                "hec-deadletter-" + stream.getId(),
+                configuration.getInt(CK_SPLUNK_HEC_DEAD_LETTER_FILE_SIZE, 64) * 1024L * 1024L,
+                configuration.getInt(CK_SPLUNK_HEC_DEAD_LETTER_ROLL_INTERVAL, 300) * 1000L
+            );
+        }
+
         // Set up sender.
         sender = new HECSender(
             configuration.getString(CK_SPLUNK_URL),
@@ -63,16 +106,35 @@ public class SplunkHECOutput implements MessageOutput {
             configuration.getBoolean(CK_SPLUNK_HEC_VERIFY_SSL, true),
             configuration.getString(CK_SPLUNK_HEC_INDEX, "main"),
             configuration.getString(CK_SPLUNK_HEC_SOURCETYPE, "input"),
-            configuration.getString(CK_SPLUNK_HEC_SOURCE, "graylog")
+            configuration.getString(CK_SPLUNK_HEC_SOURCE, "graylog"),
+            lanes,
+            deadLetterWriter
         );
+        lanes.registerMetrics(metricRegistry, metricPrefix);
 
         running = true;
     }
 
+    private static Set<String> parseLaneNames(String names) {
+        final Set<String> result = new HashSet<>();
+        if (names != null) {
+            for (String name : names.split(",")) {
+                if (!name.trim().isEmpty()) {
+                    result.add(name.trim());
+                }
+            }
+        }
+        return result;
+    }
+
     @Override
     public void stop() {
-        sender.stop();
-        running = false;
+        try {
+            sender.stop();
+        } finally {
+            lanes.removeMetrics(metricRegistry);
+            running = false;
+        }
     }
 
     @Override
@@ -161,6 +223,42 @@ public class SplunkHECOutput implements MessageOutput {
                             ConfigurationField.Optional.OPTIONAL)
             );
 
+            configurationRequest.addField(new TextField(
+                            CK_SPLUNK_HEC_PRIORITY_LANES, "Priority Lanes", "",
+                            "Lanes as name:weight[:rule,...] separated by ';'. Rules are stream=<stream id> or <field>=<value>; unmatched messages go to the last lane. A full lane blocks writes to all lanes unless it is a shedding lane. Example: security:8:severity=critical;bulk:1",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            configurationRequest.addField(new NumberField(
+                            CK_SPLUNK_HEC_LANE_QUEUE_SIZE, "Lane Queue Size", 1024,
+                            "Maximum number of messages buffered per priority lane; lanes only isolate traffic while they are below this size",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            configurationRequest.addField(new TextField(
+                            CK_SPLUNK_HEC_SHEDDING_LANES, "Shedding Lanes", "",
+                            "Comma-separated priority lanes that shed messages when full instead of blocking the other lanes. Shed messages go to the dead letter directory, or are dropped if none is set. Example: bulk",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            configurationRequest.addField(new TextField(
+                            CK_SPLUNK_HEC_DEAD_LETTER_DIR, "Dead Letter Directory", "",
+                            "Directory for batches that could not be delivered to HEC. Leave empty to discard them.",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            configurationRequest.addField(new NumberField(
+                            CK_SPLUNK_HEC_DEAD_LETTER_FILE_SIZE, "Dead Letter File Size (MB)", 64,
+                            "Size at which a dead-letter file is rolled",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            configurationRequest.addField(new NumberField(
+                            CK_SPLUNK_HEC_DEAD_LETTER_ROLL_INTERVAL, "Dead Letter Roll Interval (seconds)", 300,
+                            "Age at which a dead-letter file is rolled and becomes replayable. Idle files roll after one minute.",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
             return configurationRequest;
         }
     }
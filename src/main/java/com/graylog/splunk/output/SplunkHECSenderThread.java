@@ -17,19 +17,16 @@
 
 package com.graylog.splunk.output;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.graylog.splunk.output.deadletter.DeadLetterWriter;
+import com.graylog.splunk.output.lanes.PriorityLanes;
 
 import java.io.IOException;
 
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.List;
 
 import okhttp3.MediaType;
@@ -56,8 +53,9 @@ public class SplunkHECSenderThread {
     private String source;
     private String index;
     private OkHttpClient httpClient;
+    private HECEventWriter eventWriter;
 
-    public SplunkHECSenderThread(final BlockingQueue<Message> queue) {
+    public SplunkHECSenderThread(final PriorityLanes lanes, final DeadLetterWriter deadLetterWriter) {
         this.senderThread = new Thread(new Runnable() {
             @Override
             public void run() {
@@ -68,15 +66,10 @@ public class SplunkHECSenderThread {
                     long pollTimeout = MAX_BATCH_WAIT - (System.currentTimeMillis() - batchStartTime);
                     if (pollTimeout > 0) {
                         try {
-                            Message message = queue.poll(pollTimeout, TimeUnit.MILLISECONDS);
-                            if (message != null) {
-                                messages.add(message);
-                                // If the poll attempt was able to get a message,
-                                // and the batch has not reached the max batch size,
-                                // try to fill batch with other available messages.
-                                if (messages.size() < MAX_BATCH_ITEMS) {
-                                    queue.drainTo(messages, MAX_BATCH_ITEMS - messages.size());
-                                }
+                            // Once any lane has messages, fill the batch from all lanes
+                            // according to their weights.
+                            if (lanes.awaitMessages(pollTimeout, TimeUnit.MILLISECONDS)) {
+                                lanes.drainTo(messages, MAX_BATCH_ITEMS - messages.size());
                             }
                         } catch (InterruptedException e) {
                             // ignore, when stopping keepRunning will be set to false outside
@@ -89,24 +82,39 @@ public class SplunkHECSenderThread {
                         if (messages.isEmpty()) {
                             batchStartTime = System.currentTimeMillis();
                         } else {
+                            String requestBody = "";
                             try {
-                                String requestBody = "";
+                                final StringBuilder sb = new StringBuilder(messages.size() * 512);
                                 for (Message message : messages) {
-                                    requestBody += getHECPayloadFromMessage(message) + "\n";
+                                    eventWriter.append(sb, message);
+                                    sb.append('\n');
                                 }
+                                requestBody = sb.toString();
                                 LOG.info("{}: Sending {} message(s), with a payload size of {} bytes, to splunk", senderThread.getName(), messages.size(), requestBody.getBytes(StandardCharsets.UTF_8).length);
                                 sendToHEC(requestBody);
                                 messages.clear();
                                 batchStartTime = System.currentTimeMillis();
                             } catch (HttpOutputException e) {
-                                LOG.info("{}: Call to Splunk HEC endpoint failed! Log messages likely lost.", senderThread.getName());
+                                if (deadLetterWriter != null) {
+                                    LOG.info("{}: Call to Splunk HEC endpoint failed! Writing {} message(s) to dead letters: {}", senderThread.getName(), messages.size(), e.getMessage());
+                                    deadLetterWriter.write(requestBody, e.getStatus(), e.getMessage(), messages.size());
+                                } else {
+                                    LOG.info("{}: Call to Splunk HEC endpoint failed! Log messages likely lost.", senderThread.getName());
+                                }
                                 messages.clear();
                                 batchStartTime = System.currentTimeMillis();
                             }
                         }
                     }
+
+                    if (deadLetterWriter != null) {
+                        deadLetterWriter.rollIfDue();
+                    }
                 }
                 messages.clear();
+                if (deadLetterWriter != null) {
+                    deadLetterWriter.close();
+                }
                 LOG.debug("{}: exiting!", senderThread.getName());
             }
         });
@@ -120,6 +128,7 @@ public class SplunkHECSenderThread {
         this.index = index;
         this.sourcetype = sourcetype;
         this.source = source;
+        this.eventWriter = new HECEventWriter(index, sourcetype, source);
 
         keepRunning.set(true);
         senderThread.start();
@@ -131,24 +140,7 @@ public class SplunkHECSenderThread {
     }
 
     public String getHECPayloadFromMessage(Message message) {
-        final Gson gson = new GsonBuilder().setDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").create();
-        Map<String, Object> hecMessage  = new HashMap<String, Object>();
-        hecMessage.put("time", message.getTimestamp().toDate().getTime());
-        hecMessage.put("host", message.getSource());
-        hecMessage.put("source", this.source);
-        hecMessage.put("sourcetype", this.sourcetype);
-        hecMessage.put("index", this.index);
-        hecMessage.put("event", message.getMessage());
-
-        Map<String, Object> fields = new HashMap<String, Object>();
-        for (Map.Entry<String, Object> field : message.getFields().entrySet()) {
-            if (Message.RESERVED_FIELDS.contains(field.getKey()) || field.getKey().equals(Message.FIELD_STREAMS)) {
-                continue;
-            }
-            fields.put(field.getKey(), field.getValue());
-        }
-        hecMessage.put("fields", fields);
-        return gson.toJson(hecMessage);
+        return eventWriter.toJson(message);
     }
 
     public void sendToHEC(String jsonBody) throws HttpOutputException {
@@ -160,7 +152,7 @@ public class SplunkHECSenderThread {
             Response response = this.httpClient.newCall(request).execute();
             response.close();
             if (response.code() != 200) {
-                throw new HttpOutputException("Unexpected HTTP response status " + response.code());
+                throw new HttpOutputException("Unexpected HTTP response status " + response.code(), response.code());
             }
         } catch (IOException e) {
             throw new HttpOutputException("Error while posting stream to HEC endpoint: "+e.toString(), e);
@@ -171,12 +163,25 @@ public class SplunkHECSenderThread {
 
         private static final long serialVersionUID = -5301266791901423492L;
 
+        // HTTP status of the failed call, 0 if no response was received.
+        private final int status;
+
         public HttpOutputException(String msg) {
+            this(msg, 0);
+        }
+
+        public HttpOutputException(String msg, int status) {
             super(msg);
+            this.status = status;
         }
 
         public HttpOutputException(String msg, Throwable cause) {
             super(msg, cause);
+            this.status = 0;
+        }
+
+        public int getStatus() {
+            return status;
         }
     }
 }
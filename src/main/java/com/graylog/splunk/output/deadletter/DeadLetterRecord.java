@@ -0,0 +1,46 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.graylog.splunk.output.deadletter;
+
+/**
+ * One line of a dead-letter file: a failed HEC batch, exactly as it was posted.
+ */
+public class DeadLetterRecord {
+
+    // Epoch milliseconds of the failure.
+    public long time;
+    // HTTP status of the failed call, 0 if no response was received.
+    public int status;
+    public String reason;
+    public int events;
+    // Newline separated HEC events, ready to be posted again.
+    public String payload;
+    // Set by DeadLetterReplay when HEC rejects the record again; omitted otherwise.
+    public Integer rejectedStatus;
+    public String rejectedReason;
+
+    public DeadLetterRecord() {
+    }
+
+    public DeadLetterRecord(long time, int status, String reason, int events, String payload) {
+        this.time = time;
+        this.status = status;
+        this.reason = reason;
+        this.events = events;
+        this.payload = payload;
+    }
+}
@@ -0,0 +1,515 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.graylog.splunk.output.deadletter;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+import com.graylog.splunk.output.senders.HECSender;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import okhttp3.ConnectionPool;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Standalone command that posts dead-letter files back to a HEC endpoint.
+ *
+ * Payloads of consecutive records are packed into large gzip compressed batches which
+ * are posted over several connections in parallel. After every contiguous run of
+ * acknowledged batches the number of replayed lines is written to a
+ * <code>.checkpoint</code> file next to the dead-letter file, so an interrupted replay
+ * resumes where it stopped. Fully replayed files are renamed to <code>.replayed</code>.
+ * Events HEC refuses as invalid are moved, one per record, to a <code>.rejected</code>
+ * file and skipped; the rest of their batch is still delivered. A refused token,
+ * channel or URL stops the replay with the checkpoint kept. Resuming re-sends batches
+ * that were acknowledged after the first failure, so delivery is at-least-once.
+ *
+ * <pre>
+ * java -cp graylog.jar:graylog-plugin-splunk-hec.jar com.graylog.splunk.output.deadletter.DeadLetterReplay \
+ *     --url https://splunk:8088/services/collector --token TOKEN --dir /var/lib/graylog-server/splunk-deadletter \
+ *     [--threads 4] [--batch-bytes 8388608] [--no-verify-ssl]
+ * </pre>
+ */
+public class DeadLetterReplay {
+
+    public static final String CHECKPOINT_SUFFIX = ".checkpoint";
+    public static final String REPLAYED_SUFFIX = ".replayed";
+    public static final String REJECTED_SUFFIX = ".rejected";
+
+    private static final Logger LOG = LoggerFactory.getLogger(DeadLetterReplay.class);
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+    private static final long HTTP_TIMEOUT = 30000;    // 30 seconds (in MS)
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long RETRY_BACKOFF = 1000;    // 1 second (in MS), doubled per attempt
+    // HEC error codes sent with a 400 that concern the token or channel rather than the events.
+    private static final Set<Integer> FATAL_HEC_CODES = new HashSet<>(Arrays.asList(2, 3, 4, 10, 11, 14));
+
+    private final OkHttpClient httpClient;
+    private final URL url;
+    private final String token;
+    private final int threads;
+    private final long maxBatchBytes;
+    private final Gson gson = new Gson();
+    private final AtomicLong replayedEvents = new AtomicLong();
+    private final AtomicLong rejectedEvents = new AtomicLong();
+    private final AtomicBoolean aborted = new AtomicBoolean(false);
+
+    public DeadLetterReplay(URL url, String token, boolean verifySSL, int threads, long maxBatchBytes) {
+        this.url = url;
+        this.token = token;
+        this.threads = threads;
+        this.maxBatchBytes = maxBatchBytes;
+
+        OkHttpClient.Builder builder = (verifySSL) ? (new OkHttpClient.Builder()) : HECSender.getUnsafeOkHttpClient();
+        this.httpClient = builder
+            .connectionPool(new ConnectionPool(threads, 5, TimeUnit.MINUTES))
+            .connectTimeout(HTTP_TIMEOUT, TimeUnit.MILLISECONDS)
+            .readTimeout(HTTP_TIMEOUT, TimeUnit.MILLISECONDS)
+            .writeTimeout(HTTP_TIMEOUT, TimeUnit.MILLISECONDS)
+            .build();
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--no-verify-ssl".equals(args[i])) {
+                options.put(args[i], "true");
+            } else if (args[i].startsWith("--") && i + 1 < args.length) {
+                options.put(args[i], args[++i]);
+            } else {
+                usage();
+                return;
+            }
+        }
+        if (!options.containsKey("--url") || !options.containsKey("--token") || !options.containsKey("--dir")) {
+            usage();
+            return;
+        }
+
+        final DeadLetterReplay replay = new DeadLetterReplay(
+            new URL(options.get("--url")),
+            options.get("--token"),
+            !options.containsKey("--no-verify-ssl"),
+            Integer.parseInt(options.containsKey("--threads") ? options.get("--threads") : "4"),
+            Long.parseLong(options.containsKey("--batch-bytes") ? options.get("--batch-bytes") : "8388608")
+        );
+        final boolean ok = replay.replayDirectory(new File(options.get("--dir")));
+        System.out.println("Replayed " + replay.getReplayedEvents() + " event(s), " + replay.getRejectedEvents() + " event(s) rejected.");
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: DeadLetterReplay --url <HEC URL> --token <HEC token> --dir <dead-letter directory>"
+            + " [--threads <n>] [--batch-bytes <n>] [--no-verify-ssl]");
+        System.exit(2);
+    }
+
+    /**
+     * Replays all finished dead-letter files in the directory, oldest first. A file whose
+     * replay fails is left in place with its checkpoint, and the remaining files are
+     * still replayed, unless HEC refused the token, channel or endpoint, in which case
+     * the whole replay stops.
+     *
+     * @return false if a batch of any file could not be delivered
+     */
+    public boolean replayDirectory(File directory) throws IOException, InterruptedException {
+        final File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(DeadLetterWriter.FILE_SUFFIX);
+            }
+        });
+        if (files == null) {
+            throw new IOException("Cannot list directory " + directory);
+        }
+        Arrays.sort(files);
+
+        boolean ok = true;
+        for (File file : files) {
+            if (!replayFile(file)) {
+                ok = false;
+            }
+            if (aborted.get()) {
+                LOG.error("Replay aborted, HEC refused the request itself rather than its events.");
+                break;
+            }
+        }
+        return ok;
+    }
+
+    public boolean replayFile(File file) throws IOException, InterruptedException {
+        final File checkpointFile = new File(file.getPath() + CHECKPOINT_SUFFIX);
+        final File rejectedFile = new File(file.getPath() + REJECTED_SUFFIX);
+        final Checkpoint checkpoint = new Checkpoint(checkpointFile);
+        LOG.info("Replaying {} from line {}", file, checkpoint.getCommittedLines() + 1);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final Semaphore inFlight = new Semaphore(threads * 2);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            final long startLine = checkpoint.getCommittedLines();
+            long lineNumber = 0;
+            long sequence = 0;
+            List<DeadLetterRecord> records = new ArrayList<>();
+            long batchBytes = 0;
+            String line;
+
+            while (!failed.get() && !aborted.get() && (line = reader.readLine()) != null) {
+                lineNumber++;
+                if (lineNumber <= startLine || line.trim().isEmpty()) {
+                    continue;
+                }
+
+                final DeadLetterRecord record;
+                try {
+                    record = gson.fromJson(line, DeadLetterRecord.class);
+                } catch (JsonSyntaxException e) {
+                    LOG.warn("Skipping malformed line {} of {}: {}", lineNumber, file, e.getMessage());
+                    continue;
+                }
+                if (record == null || record.payload == null || record.payload.isEmpty()) {
+                    continue;
+                }
+
+                final long payloadBytes = record.payload.getBytes(StandardCharsets.UTF_8).length + 1;
+                if (batchBytes > 0 && batchBytes + payloadBytes > maxBatchBytes) {
+                    submit(executor, inFlight, failed, checkpoint, rejectedFile, sequence++, lineNumber - 1, records);
+                    records = new ArrayList<>();
+                    batchBytes = 0;
+                }
+                records.add(record);
+                batchBytes += payloadBytes;
+            }
+            if (!failed.get() && !aborted.get()) {
+                submit(executor, inFlight, failed, checkpoint, rejectedFile, sequence, lineNumber, records);
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+
+        if (failed.get() || aborted.get()) {
+            LOG.error("Replay of {} stopped, {} line(s) are checkpointed in {}", file, checkpoint.getCommittedLines(), checkpointFile);
+            return false;
+        }
+
+        final File replayed = new File(file.getPath() + REPLAYED_SUFFIX);
+        if (!file.renameTo(replayed)) {
+            throw new IOException("Cannot rename " + file + " to " + replayed);
+        }
+        Files.deleteIfExists(checkpointFile.toPath());
+        LOG.info("Finished replaying {}", file);
+        return true;
+    }
+
+    public long getReplayedEvents() {
+        return replayedEvents.get();
+    }
+
+    public long getRejectedEvents() {
+        return rejectedEvents.get();
+    }
+
+    private void submit(ExecutorService executor, final Semaphore inFlight, final AtomicBoolean failed, final Checkpoint checkpoint, final File rejectedFile,
+                        final long sequence, final long endLine, final List<DeadLetterRecord> records) throws InterruptedException {
+        inFlight.acquire();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final List<Event> events = new ArrayList<>();
+                    for (DeadLetterRecord record : records) {
+                        for (String event : record.payload.split("\n")) {
+                            if (!event.trim().isEmpty()) {
+                                events.add(new Event(record, event));
+                            }
+                        }
+                    }
+                    if (!events.isEmpty()) {
+                        deliver(events, rejectedFile);
+                    }
+                    checkpoint.complete(sequence, endLine);
+                } catch (FatalReplayException e) {
+                    LOG.error("Could not replay batch ending at line {}: {}", endLine, e.getMessage());
+                    aborted.set(true);
+                } catch (Exception e) {
+                    LOG.error("Could not replay batch ending at line {}: {}", endLine, e.getMessage());
+                    failed.set(true);
+                } finally {
+                    inFlight.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Posts the events and narrows down failures to the events HEC actually refuses:
+     * a 413 splits the batch in half, a 400 skips the events HEC already indexed and sets
+     * aside only the invalid one. Without an invalid event number every event is retried
+     * on its own.
+     */
+    private void deliver(List<Event> events, File rejectedFile) throws IOException, InterruptedException {
+        final HecResponse response = post(events);
+        if (response.status == 200) {
+            replayedEvents.addAndGet(events.size());
+            return;
+        }
+
+        if (response.status == 413) {
+            if (events.size() > 1) {
+                final int half = events.size() / 2;
+                deliver(new ArrayList<>(events.subList(0, half)), rejectedFile);
+                deliver(new ArrayList<>(events.subList(half, events.size())), rejectedFile);
+            } else {
+                reject(rejectedFile, events, response);
+            }
+            return;
+        }
+
+        // 400, the data itself was refused.
+        final int invalid = response.invalidEventNumber;
+        if (invalid >= 0 && invalid < events.size()) {
+            // HEC indexes the events before the invalid one, so they must not be sent again.
+            replayedEvents.addAndGet(invalid);
+            reject(rejectedFile, events.subList(invalid, invalid + 1), response);
+            if (invalid + 1 < events.size()) {
+                deliver(new ArrayList<>(events.subList(invalid + 1, events.size())), rejectedFile);
+            }
+        } else if (events.size() > 1) {
+            for (Event event : events) {
+                deliver(Collections.singletonList(event), rejectedFile);
+            }
+        } else {
+            reject(rejectedFile, events, response);
+        }
+    }
+
+    /**
+     * Appends events HEC will not accept to the .rejected file, one record per event,
+     * keeping the original failure and adding the status and reason of the rejection.
+     */
+    private synchronized void reject(File rejectedFile, List<Event> events, HecResponse response) throws IOException {
+        LOG.warn("{} event(s) were rejected, moving them to {}: {}", events.size(), rejectedFile, response.reason);
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(rejectedFile, true), StandardCharsets.UTF_8))) {
+            for (Event event : events) {
+                final DeadLetterRecord record = new DeadLetterRecord(event.origin.time, event.origin.status, event.origin.reason, 1, event.line + "\n");
+                record.rejectedStatus = response.status;
+                record.rejectedReason = response.reason;
+                writer.write(gson.toJson(record));
+                writer.write('\n');
+            }
+        }
+        rejectedEvents.addAndGet(events.size());
+    }
+
+    /**
+     * Posts the events, retrying throttling, server errors and connection failures.
+     *
+     * @return the response if HEC accepted the events or refused them with 400 or 413
+     * @throws FatalReplayException if HEC refused the request itself, e.g. a bad token,
+     *                              channel or URL; retrying other batches cannot succeed
+     */
+    private HecResponse post(List<Event> events) throws IOException, InterruptedException {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (Writer gzip = new OutputStreamWriter(new GZIPOutputStream(compressed), StandardCharsets.UTF_8)) {
+            for (Event event : events) {
+                gzip.write(event.line);
+                gzip.write('\n');
+            }
+        }
+        final RequestBody body = RequestBody.create(JSON, compressed.toByteArray());
+        final Request request = new Request.Builder()
+            .url(this.url)
+            .post(body)
+            .header("Authorization", "Splunk " + this.token)
+            .header("Content-Encoding", "gzip")
+            .build();
+
+        for (int attempt = 1; ; attempt++) {
+            String failure;
+            try (Response response = this.httpClient.newCall(request).execute()) {
+                final int code = response.code();
+                final String text = response.body() != null ? response.body().string() : "";
+                if (code == 200 || code == 413) {
+                    return new HecResponse(code, "HTTP response status " + code, -1);
+                }
+                failure = "Unexpected HTTP response status " + code + ": " + text;
+                if (code == 400) {
+                    final HecResponse hecResponse = parseError(code, text);
+                    if (!FATAL_HEC_CODES.contains(hecResponse.hecCode)) {
+                        return hecResponse;
+                    }
+                    throw new FatalReplayException(failure);
+                }
+                // Any other client error (bad or disabled token, wrong URL, ...) is not about the events.
+                if (code >= 400 && code < 500 && code != 429) {
+                    throw new FatalReplayException(failure);
+                }
+            } catch (FatalReplayException e) {
+                throw e;
+            } catch (IOException e) {
+                failure = e.toString();
+            }
+
+            if (attempt >= MAX_ATTEMPTS) {
+                throw new IOException(failure + " after " + attempt + " attempt(s)");
+            }
+            LOG.warn("Replay attempt {} failed: {}", attempt, failure);
+            Thread.sleep(RETRY_BACKOFF << (attempt - 1));
+        }
+    }
+
+    /**
+     * Reads HEC's <code>{"text": ..., "code": ..., "invalid-event-number": ...}</code> error body.
+     */
+    private static HecResponse parseError(int status, String text) {
+        int hecCode = -1;
+        int invalidEventNumber = -1;
+        String reason = "HTTP response status " + status;
+        try {
+            final JsonObject json = new JsonParser().parse(text).getAsJsonObject();
+            if (json.has("code")) {
+                hecCode = json.get("code").getAsInt();
+            }
+            if (json.has("invalid-event-number")) {
+                invalidEventNumber = json.get("invalid-event-number").getAsInt();
+            }
+            if (json.has("text")) {
+                reason = json.get("text").getAsString();
+            }
+        } catch (RuntimeException e) {
+            // Not a HEC error body, keep the defaults.
+        }
+        return new HecResponse(status, reason, invalidEventNumber, hecCode);
+    }
+
+    private static class Event {
+        private final DeadLetterRecord origin;
+        private final String line;
+
+        private Event(DeadLetterRecord origin, String line) {
+            this.origin = origin;
+            this.line = line;
+        }
+    }
+
+    private static class HecResponse {
+        private final int status;
+        private final String reason;
+        private final int invalidEventNumber;
+        private final int hecCode;
+
+        private HecResponse(int status, String reason, int invalidEventNumber) {
+            this(status, reason, invalidEventNumber, -1);
+        }
+
+        private HecResponse(int status, String reason, int invalidEventNumber, int hecCode) {
+            this.status = status;
+            this.reason = reason;
+            this.invalidEventNumber = invalidEventNumber;
+            this.hecCode = hecCode;
+        }
+    }
+
+    private static class FatalReplayException extends IOException {
+
+        private static final long serialVersionUID = 4391583307627340417L;
+
+        private FatalReplayException(String msg) {
+            super(msg);
+        }
+    }
+
+    /**
+     * Tracks the highest line up to which every batch has been acknowledged. Batches
+     * complete out of order, so later ones wait in pending until the gap is closed.
+     */
+    static class Checkpoint {
+        private final File file;
+        private final TreeMap<Long, Long> pending = new TreeMap<>();
+        private long nextSequence = 0;
+        private volatile long committedLines;
+
+        Checkpoint(File file) throws IOException {
+            this.file = file;
+            this.committedLines = file.exists()
+                ? Long.parseLong(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim())
+                : 0;
+        }
+
+        long getCommittedLines() {
+            return committedLines;
+        }
+
+        synchronized void complete(long sequence, long endLine) throws IOException {
+            pending.put(sequence, endLine);
+            boolean advanced = false;
+            while (pending.containsKey(nextSequence)) {
+                committedLines = Math.max(committedLines, pending.remove(nextSequence));
+                nextSequence++;
+                advanced = true;
+            }
+            if (advanced) {
+                // Replace the checkpoint atomically, a torn write would break the next resume.
+                final Path temp = new File(file.getPath() + ".tmp").toPath();
+                Files.write(temp, Long.toString(committedLines).getBytes(StandardCharsets.UTF_8));
+                Files.move(temp, file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.graylog.splunk.output.deadletter;
+
+import com.google.gson.Gson;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Appends failed HEC batches to rolling NDJSON files.
+ *
+ * The file being written carries an {@value #ACTIVE_SUFFIX} suffix, which is dropped once
+ * the file is rolled or the writer is closed. {@link DeadLetterReplay} only picks up files
+ * without the suffix, so it never reads a file that is still growing. Files roll when
+ * they reach their size limit, when they have been open for the roll interval, or when
+ * nothing was written to them for {@link #IDLE_TIMEOUT} ms, so dead letters become
+ * replayable while Graylog keeps running.
+ *
+ * Every writer adds a random token to its file names and holds a lock on its active file,
+ * so several writers can share a prefix and a directory. On construction, active files
+ * of the same prefix that no writer holds a lock on, i.e. that were left behind by a
+ * crash, are finished.
+ */
+public class DeadLetterWriter {
+
+    public static final String FILE_SUFFIX = ".ndjson";
+    public static final String ACTIVE_SUFFIX = ".active";
+
+    public static final long IDLE_TIMEOUT = 60000;    // 1 minute (in MS)
+
+    private static final Logger LOG = LoggerFactory.getLogger(DeadLetterWriter.class);
+
+    private final File directory;
+    private final String prefix;
+    private final String instanceToken = UUID.randomUUID().toString().replace("-", "");
+    private final long maxFileBytes;
+    private final long rollInterval;
+    private final Gson gson = new Gson();
+
+    private File activeFile;
+    private FileOutputStream out;
+    private Writer writer;
+    private long writtenBytes;
+    private long openedAt;
+    private long lastWriteAt;
+    private int sequence = 0;
+
+    public DeadLetterWriter(File directory, String prefix, long maxFileBytes, long rollInterval) {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.maxFileBytes = maxFileBytes;
+        this.rollInterval = rollInterval;
+        recoverActiveFiles();
+    }
+
+    /**
+     * Never throws; a failure to write the dead letter is logged, as there is nowhere
+     * else left to put the batch. After a failed write the file is cut back to its last
+     * complete record and rolled, so the next record starts in a fresh file.
+     */
+    public synchronized void write(String payload, int status, String reason, int events) {
+        final String line = gson.toJson(new DeadLetterRecord(System.currentTimeMillis(), status, reason, events, payload)) + "\n";
+        try {
+            if (writer == null) {
+                open();
+            }
+            writer.write(line);
+            writer.flush();
+        } catch (IOException e) {
+            LOG.error("Could not write dead letter to {}, {} event(s) lost: {}", activeFile, events, e.getMessage());
+            abandon();
+            return;
+        }
+
+        writtenBytes += line.getBytes(StandardCharsets.UTF_8).length;
+        lastWriteAt = System.currentTimeMillis();
+        if (writtenBytes >= maxFileBytes || lastWriteAt - openedAt >= rollInterval) {
+            close();
+        }
+    }
+
+    /**
+     * Rolls the active file once it is older than the roll interval or has been idle
+     * for {@link #IDLE_TIMEOUT} ms. Called periodically by the sender thread.
+     */
+    public synchronized void rollIfDue() {
+        if (writer == null) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        if (now - openedAt >= rollInterval || now - lastWriteAt >= IDLE_TIMEOUT) {
+            close();
+        }
+    }
+
+    public synchronized void close() {
+        try {
+            roll();
+        } catch (IOException e) {
+            LOG.warn("Could not finish dead-letter file {}, its dead letters are kept and recovered on the next start: {}", activeFile, e.getMessage());
+        }
+    }
+
+    private void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+        final String name = String.format("%s-%s-%013d-%04d%s", prefix, instanceToken, System.currentTimeMillis(), sequence++ % 10000, FILE_SUFFIX);
+        activeFile = new File(directory, name + ACTIVE_SUFFIX);
+        out = new FileOutputStream(activeFile, true);
+        // Released when the stream is closed; tells other writers the file is in use.
+        final FileLock lock;
+        try {
+            lock = out.getChannel().tryLock();
+        } catch (IOException | OverlappingFileLockException e) {
+            out.close();
+            out = null;
+            throw new IOException("Cannot lock " + activeFile, e);
+        }
+        if (lock == null) {
+            out.close();
+            out = null;
+            throw new IOException("Cannot lock " + activeFile + ", it is in use by another writer");
+        }
+        writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        writtenBytes = 0;
+        openedAt = System.currentTimeMillis();
+        lastWriteAt = openedAt;
+        LOG.info("Writing dead letters to {}", activeFile);
+    }
+
+    private void roll() throws IOException {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } finally {
+            writer = null;
+            out = null;
+        }
+        finish(activeFile);
+    }
+
+    /**
+     * Drops a writer whose last write failed. The file is truncated to the records that
+     * were written completely and closed underneath the buffered writer, which would
+     * otherwise flush the rest of the failed record on close.
+     */
+    private void abandon() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.getChannel().truncate(writtenBytes);
+        } catch (IOException e) {
+            LOG.warn("Could not truncate dead-letter file {}, it may end in a partial record: {}", activeFile, e.getMessage());
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            LOG.warn("Could not close dead-letter file {}: {}", activeFile, e.getMessage());
+        }
+        writer = null;
+        out = null;
+        if (writtenBytes == 0 && activeFile.delete()) {
+            return;
+        }
+        try {
+            finish(activeFile);
+        } catch (IOException e) {
+            LOG.warn("Could not finish dead-letter file {}, its dead letters are kept and recovered on the next start: {}", activeFile, e.getMessage());
+        }
+    }
+
+    private void recoverActiveFiles() {
+        final File[] leftovers = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(prefix + "-") && name.endsWith(FILE_SUFFIX + ACTIVE_SUFFIX);
+            }
+        });
+        if (leftovers == null) {
+            return;
+        }
+        for (File leftover : leftovers) {
+            try {
+                if (isLocked(leftover)) {
+                    continue;
+                }
+                finish(leftover);
+                LOG.info("Recovered dead-letter file {}", leftover);
+            } catch (IOException e) {
+                LOG.warn("Could not recover dead-letter file {}: {}", leftover, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Whether a live writer, in this or another process, holds the file.
+     */
+    private static boolean isLocked(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            final FileLock lock = channel.tryLock();
+            if (lock == null) {
+                return true;
+            }
+            lock.release();
+            return false;
+        } catch (OverlappingFileLockException e) {
+            return true;
+        }
+    }
+
+    private static void finish(File active) throws IOException {
+        final String path = active.getPath();
+        final File done = new File(path.substring(0, path.length() - ACTIVE_SUFFIX.length()));
+        // Another writer may have recovered the file between our close and this rename.
+        if (!active.renameTo(done) && !(done.exists() && !active.exists())) {
+            throw new IOException("Cannot rename " + active + " to " + done);
+        }
+    }
+}
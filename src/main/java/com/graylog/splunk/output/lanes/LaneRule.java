@@ -0,0 +1,86 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.graylog.splunk.output.lanes;
+
+import java.util.Collection;
+
+import org.graylog2.plugin.Message;
+
+/**
+ * A routing rule of a priority lane, matching either a stream id or a field value.
+ */
+public abstract class LaneRule {
+
+    private static final String STREAM_RULE = "stream";
+
+    public abstract boolean matches(Message message);
+
+    /**
+     * Parses <code>stream=&lt;stream id&gt;</code> or <code>&lt;field&gt;=&lt;value&gt;</code>.
+     */
+    public static LaneRule parse(String rule) {
+        final String[] kv = rule.trim().split("=", 2);
+        if (kv.length != 2 || kv[0].trim().isEmpty()) {
+            throw new IllegalArgumentException("Invalid rule <" + rule + ">, expected stream=<stream id> or <field>=<value>.");
+        }
+        final String key = kv[0].trim();
+        final String value = kv[1].trim();
+        return STREAM_RULE.equals(key) ? new StreamRule(value) : new FieldRule(key, value);
+    }
+
+    public static final class StreamRule extends LaneRule {
+        private final String streamId;
+
+        public StreamRule(String streamId) {
+            this.streamId = streamId;
+        }
+
+        public String getStreamId() {
+            return streamId;
+        }
+
+        @Override
+        public boolean matches(Message message) {
+            final Collection<String> streamIds = message.getStreamIds();
+            return streamIds != null && streamIds.contains(streamId);
+        }
+    }
+
+    public static final class FieldRule extends LaneRule {
+        private final String field;
+        private final String value;
+
+        public FieldRule(String field, String value) {
+            this.field = field;
+            this.value = value;
+        }
+
+        public String getField() {
+            return field;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        @Override
+        public boolean matches(Message message) {
+            final Object fieldValue = message.getField(field);
+            return fieldValue != null && value.equals(String.valueOf(fieldValue));
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.graylog.splunk.output.lanes;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.graylog2.plugin.Message;
+
+/**
+ * A single priority lane: a bounded queue of messages, the weight it gets when the
+ * sender schedules between lanes, and the rules that route messages into it.
+ */
+public class PriorityLane {
+
+    private final String name;
+    private final int weight;
+    private final List<LaneRule> rules;
+    private final BlockingQueue<Entry> queue;
+    private final boolean shedding;
+    private final Timer latency = new Timer();
+    private final Meter shed = new Meter();
+
+    public PriorityLane(String name, int weight, List<LaneRule> rules, int capacity) {
+        this(name, weight, rules, capacity, false);
+    }
+
+    /**
+     * @param shedding if true, messages are turned away while the lane is full instead of
+     *                 blocking the writer, so a backlog here cannot hold up other lanes
+     */
+    public PriorityLane(String name, int weight, List<LaneRule> rules, int capacity, boolean shedding) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("Weight of lane <" + name + "> must be at least 1.");
+        }
+        this.name = name;
+        this.weight = weight;
+        this.rules = Collections.unmodifiableList(new ArrayList<>(rules));
+        this.queue = new LinkedBlockingQueue<>(capacity);
+        this.shedding = shedding;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public boolean isShedding() {
+        return shedding;
+    }
+
+    /**
+     * Messages turned away because this shedding lane was full.
+     */
+    public Meter getShed() {
+        return shed;
+    }
+
+    /**
+     * Time messages spent waiting in this lane before the sender picked them up.
+     */
+    public Timer getLatency() {
+        return latency;
+    }
+
+    /**
+     * A lane without rules matches nothing on its own; it only receives messages
+     * when it is the fallback lane.
+     */
+    public boolean matches(Message message) {
+        for (LaneRule rule : rules) {
+            if (rule.matches(message)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void put(Message message) throws InterruptedException {
+        queue.put(new Entry(message, System.nanoTime()));
+    }
+
+    boolean offer(Message message) {
+        if (queue.offer(new Entry(message, System.nanoTime()))) {
+            return true;
+        }
+        shed.mark();
+        return false;
+    }
+
+    boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    int drainTo(List<Message> messages, int maxItems) {
+        final List<Entry> entries = new ArrayList<>(Math.min(maxItems, queue.size()));
+        queue.drainTo(entries, maxItems);
+        final long now = System.nanoTime();
+        for (Entry entry : entries) {
+            latency.update(now - entry.enqueuedAt, TimeUnit.NANOSECONDS);
+            messages.add(entry.message);
+        }
+        return entries.size();
+    }
+
+    private static class Entry {
+        private final Message message;
+        private final long enqueuedAt;
+
+        private Entry(Message message, long enqueuedAt) {
+            this.message = message;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+}
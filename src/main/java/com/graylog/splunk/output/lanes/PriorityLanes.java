@@ -0,0 +1,281 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.graylog.splunk.output.lanes;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.graylog2.plugin.Message;
+
+/**
+ * The set of priority lanes of one output.
+ *
+ * Lanes are configured as <code>name:weight[:rule,rule...]</code> entries separated by
+ * <code>;</code>. A rule is either <code>stream=&lt;stream id&gt;</code> or
+ * <code>&lt;field&gt;=&lt;value&gt;</code>. A message goes to the first lane with a matching
+ * rule, or to the last lane if no rule matches. For example:
+ * <pre>security:8:stream=5a1f0c2e3b1d4e0001a2b3c4,severity=critical;bulk:1</pre>
+ *
+ * The sender drains the lanes with deficit round robin, so every non-empty lane gets a
+ * share of each batch proportional to its weight. A full lane blocks the writer for all
+ * lanes, so high-volume, low-priority lanes should be made shedding: they turn messages
+ * away once full and urgent lanes keep being fed.
+ */
+public class PriorityLanes {
+
+    public static final String DEFAULT_LANE = "default";
+
+    // Messages a lane of weight 1 may contribute per scheduling round.
+    private static final int QUANTUM = 100;
+
+    private final List<PriorityLane> lanes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    // Deficit round robin state, only touched by the (single) consumer in drainTo.
+    private final int[] deficits;
+    private int cursor = 0;
+
+    private final Map<String, Metric> registeredMetrics = new HashMap<>();
+
+    public PriorityLanes(List<PriorityLane> lanes) {
+        if (lanes.isEmpty()) {
+            throw new IllegalArgumentException("At least one priority lane is required.");
+        }
+        final Set<String> names = new HashSet<>();
+        for (PriorityLane lane : lanes) {
+            if (!names.add(lane.getName())) {
+                throw new IllegalArgumentException("Duplicate priority lane <" + lane.getName() + ">.");
+            }
+        }
+        this.lanes = Collections.unmodifiableList(new ArrayList<>(lanes));
+        this.deficits = new int[lanes.size()];
+    }
+
+    /**
+     * A single lane taking every message, i.e. plain FIFO behaviour.
+     */
+    public static PriorityLanes single(int capacity) {
+        return new PriorityLanes(Collections.singletonList(
+            new PriorityLane(DEFAULT_LANE, 1, Collections.<LaneRule>emptyList(), capacity)));
+    }
+
+    public static PriorityLanes parse(String spec, int capacity) {
+        return parse(spec, capacity, Collections.<String>emptySet());
+    }
+
+    /**
+     * @param sheddingLanes names of the lanes that turn messages away when full instead
+     *                      of blocking the writer
+     */
+    public static PriorityLanes parse(String spec, int capacity, Set<String> sheddingLanes) {
+        if (spec == null || spec.trim().isEmpty()) {
+            if (!sheddingLanes.isEmpty()) {
+                throw new IllegalArgumentException("Shedding lanes require priority lanes to be configured.");
+            }
+            return single(capacity);
+        }
+
+        final List<PriorityLane> lanes = new ArrayList<>();
+        for (String laneSpec : spec.split(";")) {
+            if (laneSpec.trim().isEmpty()) {
+                continue;
+            }
+            final String[] parts = laneSpec.trim().split(":", 3);
+            if (parts.length < 2 || parts[0].trim().isEmpty()) {
+                throw new IllegalArgumentException("Invalid priority lane <" + laneSpec + ">, expected name:weight[:rules].");
+            }
+
+            final int weight;
+            try {
+                weight = Integer.parseInt(parts[1].trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid weight in priority lane <" + laneSpec + ">.", e);
+            }
+
+            final List<LaneRule> rules = new ArrayList<>();
+            if (parts.length == 3) {
+                for (String rule : parts[2].split(",")) {
+                    try {
+                        rules.add(LaneRule.parse(rule));
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("Invalid rule <" + rule + "> in priority lane <" + laneSpec + ">.", e);
+                    }
+                }
+            }
+            final String name = parts[0].trim();
+            lanes.add(new PriorityLane(name, weight, rules, capacity, sheddingLanes.contains(name)));
+        }
+
+        final Set<String> unknown = new HashSet<>(sheddingLanes);
+        for (PriorityLane lane : lanes) {
+            unknown.remove(lane.getName());
+        }
+        if (!unknown.isEmpty()) {
+            throw new IllegalArgumentException("Unknown shedding lane(s) " + unknown + ".");
+        }
+        return new PriorityLanes(lanes);
+    }
+
+    public List<PriorityLane> getLanes() {
+        return lanes;
+    }
+
+    public PriorityLane route(Message message) {
+        for (PriorityLane lane : lanes) {
+            if (lane.matches(message)) {
+                return lane;
+            }
+        }
+        return lanes.get(lanes.size() - 1);
+    }
+
+    /**
+     * Queues the message in its lane. A full lane blocks the calling output thread, and
+     * with it every other lane, unless the lane is shedding: then the message is turned
+     * away, counted in the lane's shed meter, and false is returned.
+     *
+     * @return false if the message was shed
+     */
+    public boolean put(Message message) throws InterruptedException {
+        final PriorityLane lane = route(message);
+        if (lane.isShedding()) {
+            if (!lane.offer(message)) {
+                return false;
+            }
+        } else {
+            lane.put(message);
+        }
+        lock.lock();
+        try {
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+    public boolean isEmpty() {
+        for (PriorityLane lane : lanes) {
+            if (!lane.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits until at least one lane has a message or the timeout expires.
+     *
+     * @return true if a message is available
+     */
+    public boolean awaitMessages(long timeout, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (isEmpty()) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves up to maxItems messages into the batch using deficit round robin. A lane
+     * that is cut off because the batch is full resumes its turn on the next call.
+     * Must only be called from a single consumer thread.
+     *
+     * @return the number of messages added
+     */
+    public int drainTo(List<Message> messages, int maxItems) {
+        int drained = 0;
+        while (drained < maxItems && !isEmpty()) {
+            final PriorityLane lane = lanes.get(cursor);
+            if (deficits[cursor] == 0) {
+                deficits[cursor] = lane.getWeight() * QUANTUM;
+            }
+
+            final int taken = lane.drainTo(messages, Math.min(deficits[cursor], maxItems - drained));
+            drained += taken;
+            deficits[cursor] -= taken;
+
+            if (lane.isEmpty()) {
+                deficits[cursor] = 0;
+            }
+            if (deficits[cursor] == 0) {
+                cursor = (cursor + 1) % lanes.size();
+            }
+        }
+        return drained;
+    }
+
+    /**
+     * Registers queue depth, latency and shed metrics per lane under the given prefix.
+     * Metrics left under the same names by an earlier instance are replaced.
+     */
+    public synchronized void registerMetrics(MetricRegistry metricRegistry, String prefix) {
+        for (final PriorityLane lane : lanes) {
+            register(metricRegistry, MetricRegistry.name(prefix, "lane", lane.getName(), "queueDepth"), new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    return lane.getQueueDepth();
+                }
+            });
+            register(metricRegistry, MetricRegistry.name(prefix, "lane", lane.getName(), "latency"), lane.getLatency());
+            register(metricRegistry, MetricRegistry.name(prefix, "lane", lane.getName(), "shed"), lane.getShed());
+        }
+    }
+
+    private void register(MetricRegistry metricRegistry, String name, Metric metric) {
+        metricRegistry.remove(name);
+        metricRegistry.register(name, metric);
+        registeredMetrics.put(name, metric);
+    }
+
+    /**
+     * Removes the metrics registered by this instance, leaving alone any that a newer
+     * instance has registered under the same names since.
+     */
+    public synchronized void removeMetrics(MetricRegistry metricRegistry) {
+        final Map<String, Metric> owned = new HashMap<>(registeredMetrics);
+        metricRegistry.removeMatching(new MetricFilter() {
+            @Override
+            public boolean matches(String name, Metric metric) {
+                return owned.get(name) == metric;
+            }
+        });
+        registeredMetrics.clear();
+    }
+}
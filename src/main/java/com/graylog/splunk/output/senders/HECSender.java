@@ -1,14 +1,16 @@
 package com.graylog.splunk.output.senders;
 
+import com.graylog.splunk.output.HECEventWriter;
 import com.graylog.splunk.output.SplunkHECSenderThread;
+import com.graylog.splunk.output.deadletter.DeadLetterWriter;
+import com.graylog.splunk.output.lanes.PriorityLane;
+import com.graylog.splunk.output.lanes.PriorityLanes;
 import org.graylog2.plugin.Message;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 import okhttp3.OkHttpClient;
@@ -26,6 +28,7 @@ public class HECSender implements Sender {
 
     private static final Logger LOG = LoggerFactory.getLogger(HECSender.class);
     private static final long HTTP_TIMEOUT = 2000;    // 2 seconds (in MS)
+    private static final int QUEUE_CAPACITY = 1024;
 
     private final URL url;
     private final String token;
@@ -33,12 +36,18 @@ public class HECSender implements Sender {
     private final String sourcetype;
     private final String source;
     private final String index;
-    private final BlockingQueue<Message> queue;
+    private final PriorityLanes lanes;
+    private final DeadLetterWriter deadLetterWriter;
+    private final HECEventWriter shedEventWriter;
 
     private SplunkHECSenderThread senderThread;
     private boolean initialized = false;
 
     public HECSender(String url, String token, boolean verifySSL, String index, String sourcetype, String source) throws MalformedURLException {
+        this(url, token, verifySSL, index, sourcetype, source, PriorityLanes.single(QUEUE_CAPACITY), null);
+    }
+
+    public HECSender(String url, String token, boolean verifySSL, String index, String sourcetype, String source, PriorityLanes lanes, DeadLetterWriter deadLetterWriter) throws MalformedURLException {
         this.url = new URL(url);
         this.token = token;
         this.verifySSL = verifySSL;
@@ -54,32 +63,55 @@ public class HECSender implements Sender {
         LOG.info("Source Type: {}", sourcetype);
         LOG.info("Source: {}", source);
         LOG.info("Default Timeout: {}", HTTP_TIMEOUT);
+        for (PriorityLane lane : lanes.getLanes()) {
+            LOG.info("Priority Lane: {} (weight {}{})", lane.getName(), lane.getWeight(), lane.isShedding() ? ", shedding" : "");
+        }
+        LOG.info("Dead Letters: {}", deadLetterWriter != null ? "enabled" : "disabled");
 
-        this.queue = new LinkedBlockingQueue<>(1024);
+        this.lanes = lanes;
+        this.deadLetterWriter = deadLetterWriter;
+        this.shedEventWriter = new HECEventWriter(index, sourcetype, source);
     }
 
     @Override
     public void initialize() {
-        this.senderThread = new SplunkHECSenderThread(this.queue);
+        this.senderThread = new SplunkHECSenderThread(this.lanes, this.deadLetterWriter);
         this.senderThread.start(getHttpClient(this.verifySSL), this.url, this.token, this.index, this.sourcetype, this.source);
         initialized = true;
     }
 
     @Override
     public void stop() {
-        senderThread.stop();
+        if (senderThread != null) {
+            senderThread.stop();
+        }
     }
 
     @Override
     public void send(Message message) {
         LOG.debug("Sending message: {}", message);
         try {
-            queue.put(message);
+            if (!lanes.put(message)) {
+                shed(message);
+            }
         } catch (InterruptedException e) { 
             LOG.warn("Interrupted. Message was most probably lost.");
         }
     }
 
+    private void shed(Message message) {
+        final String lane = lanes.route(message).getName();
+        if (deadLetterWriter == null) {
+            LOG.debug("Priority lane {} is full, dropping message {}", lane, message.getId());
+            return;
+        }
+        final String payload;
+        synchronized (shedEventWriter) {
+            payload = shedEventWriter.toJson(message) + "\n";
+        }
+        deadLetterWriter.write(payload, 0, "Priority lane " + lane + " full", 1);
+    }
+
     @Override
     public boolean isInitialized() {
         return initialized;
@@ -108,7 +140,7 @@ public class HECSender implements Sender {
             .build();
     }
 
-    private OkHttpClient.Builder getUnsafeOkHttpClient() {
+    public static OkHttpClient.Builder getUnsafeOkHttpClient() {
         try {
             // Create a trust manager that does not validate certificate chains
             final TrustManager[] trustAllCerts = new TrustManager[] {
@@ -0,0 +1,51 @@
+package com.graylog.splunk.output;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.Test;
+import org.graylog2.plugin.Message;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+public class TestHECEventWriter {
+
+    @Test
+    public void testToJson() {
+        HECEventWriter writer = new HECEventWriter("main", "app:fie:fie", "fie");
+        DateTime timestamp = new DateTime(1500000000042L, DateTimeZone.UTC);
+        Message message = new Message("EA \"Graylog\"\nTest", "EA Graylog Test", timestamp);
+        message.addField("count", 42);
+        message.addField("ratio", 0.5d);
+        message.addField("seen", new DateTime(1500000000042L, DateTimeZone.forOffsetHours(2)));
+        message.addField("tags", Arrays.asList("a", "b"));
+        message.addField("nested", Collections.singletonMap("ok", true));
+
+        String json = writer.toJson(message);
+        assertEquals(true, json.contains("\"time\":1500000000.042"));
+
+        JsonObject event = new JsonParser().parse(json).getAsJsonObject();
+        assertEquals("EA \"Graylog\"\nTest", event.get("event").getAsString());
+        assertEquals("fie", event.get("source").getAsString());
+
+        JsonObject fields = event.getAsJsonObject("fields");
+        assertEquals(42, fields.get("count").getAsInt());
+        assertEquals(0.5d, fields.get("ratio").getAsDouble());
+        assertEquals("2017-07-14T02:40:00.042Z", fields.get("seen").getAsString());
+        assertEquals("b", fields.getAsJsonArray("tags").get(1).getAsString());
+        assertEquals(true, fields.getAsJsonObject("nested").get("ok").getAsBoolean());
+        assertFalse(fields.has(Message.FIELD_TIMESTAMP));
+    }
+
+    @Test
+    public void testEpochSeconds() {
+        StringBuilder sb = new StringBuilder();
+        HECEventWriter.appendEpochSeconds(sb, 1005L);
+        assertEquals("1.005", sb.toString());
+    }
+}
@@ -0,0 +1,188 @@
+package com.graylog.splunk.output.deadletter;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestDeadLetterReplay {
+
+    private final Gson gson = new Gson();
+    private final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+    private HttpServer server;
+    private volatile boolean forbidden = false;
+    private volatile int maxBodyLength = Integer.MAX_VALUE;
+    private URL url;
+
+    @BeforeEach
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/services/collector", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String body = read(new GZIPInputStream(exchange.getRequestBody()));
+                String[] events = body.split("\n");
+                int status = 200;
+                String response = "{\"text\":\"Success\",\"code\":0}";
+                if (forbidden) {
+                    status = 403;
+                    response = "{\"text\":\"Token disabled\",\"code\":1}";
+                } else if (body.length() > maxBodyLength) {
+                    status = 413;
+                    response = "Content-Length of " + body.length() + " too large";
+                } else {
+                    // Like HEC, index the events up to the first invalid one.
+                    for (int i = 0; i < events.length; i++) {
+                        if (events[i].contains("bad")) {
+                            status = 400;
+                            response = "{\"text\":\"Invalid data format\",\"code\":6,\"invalid-event-number\":" + i + "}";
+                            break;
+                        }
+                        received.add(events[i]);
+                    }
+                }
+                byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(status, bytes.length);
+                exchange.getResponseBody().write(bytes);
+                exchange.close();
+            }
+        });
+        server.start();
+        url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/services/collector");
+    }
+
+    @AfterEach
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private File deadLetters(File directory, String... events) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (String event : events) {
+            sb.append(gson.toJson(new DeadLetterRecord(0L, 503, "Unexpected HTTP response status 503", 1, event + "\n"))).append('\n');
+        }
+        File file = new File(directory, "hec-deadletter-test-0000000000001-0000" + DeadLetterWriter.FILE_SUFFIX);
+        Files.write(file.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    @Test
+    public void testCheckpointCommitsContiguousSequences() throws IOException {
+        File file = new File(Files.createTempDirectory("deadletter").toFile(), "test" + DeadLetterReplay.CHECKPOINT_SUFFIX);
+        DeadLetterReplay.Checkpoint checkpoint = new DeadLetterReplay.Checkpoint(file);
+
+        checkpoint.complete(1, 20);
+        checkpoint.complete(2, 30);
+        assertEquals(0, checkpoint.getCommittedLines());
+        assertFalse(file.exists());
+
+        checkpoint.complete(0, 10);
+        assertEquals(30, checkpoint.getCommittedLines());
+        assertEquals(30, new DeadLetterReplay.Checkpoint(file).getCommittedLines());
+
+        checkpoint.complete(4, 50);
+        assertEquals(30, checkpoint.getCommittedLines());
+    }
+
+    @Test
+    public void testResumeFromCheckpoint() throws Exception {
+        File directory = Files.createTempDirectory("deadletter").toFile();
+        File file = deadLetters(directory, "{\"event\":\"one\"}", "{\"event\":\"two\"}", "{\"event\":\"three\"}");
+        File checkpoint = new File(file.getPath() + DeadLetterReplay.CHECKPOINT_SUFFIX);
+        Files.write(checkpoint.toPath(), "1".getBytes(StandardCharsets.UTF_8));
+
+        DeadLetterReplay replay = new DeadLetterReplay(url, "token", true, 2, 20);
+        assertTrue(replay.replayDirectory(directory));
+
+        Collections.sort(received);
+        assertEquals(2, received.size());
+        assertEquals("{\"event\":\"three\"}", received.get(0));
+        assertEquals("{\"event\":\"two\"}", received.get(1));
+        assertEquals(2, replay.getReplayedEvents());
+        assertFalse(file.exists());
+        assertFalse(checkpoint.exists());
+        assertTrue(new File(file.getPath() + DeadLetterReplay.REPLAYED_SUFFIX).exists());
+    }
+
+    @Test
+    public void testOnlyInvalidEventIsMovedAside() throws Exception {
+        File directory = Files.createTempDirectory("deadletter").toFile();
+        File file = deadLetters(directory, "{\"event\":\"one\"}", "{\"event\":\"bad\"}", "{\"event\":\"three\"}");
+
+        DeadLetterReplay replay = new DeadLetterReplay(url, "token", true, 1, 1024 * 1024);
+        assertTrue(replay.replayDirectory(directory));
+
+        assertEquals(2, received.size());
+        assertTrue(received.contains("{\"event\":\"one\"}"));
+        assertTrue(received.contains("{\"event\":\"three\"}"));
+        assertEquals(2, replay.getReplayedEvents());
+        assertEquals(1, replay.getRejectedEvents());
+
+        List<String> rejected = Files.readAllLines(new File(file.getPath() + DeadLetterReplay.REJECTED_SUFFIX).toPath(), StandardCharsets.UTF_8);
+        assertEquals(1, rejected.size());
+        DeadLetterRecord record = gson.fromJson(rejected.get(0), DeadLetterRecord.class);
+        assertEquals(503, record.status);
+        assertEquals(Integer.valueOf(400), record.rejectedStatus);
+        assertEquals("Invalid data format", record.rejectedReason);
+        assertEquals("{\"event\":\"bad\"}\n", record.payload);
+    }
+
+    @Test
+    public void testRefusedTokenStopsReplay() throws Exception {
+        File directory = Files.createTempDirectory("deadletter").toFile();
+        File file = deadLetters(directory, "{\"event\":\"one\"}", "{\"event\":\"two\"}");
+        forbidden = true;
+
+        DeadLetterReplay replay = new DeadLetterReplay(url, "wrong", true, 1, 1024 * 1024);
+        assertFalse(replay.replayDirectory(directory));
+
+        assertTrue(file.exists());
+        assertFalse(new File(file.getPath() + DeadLetterReplay.REPLAYED_SUFFIX).exists());
+        assertFalse(new File(file.getPath() + DeadLetterReplay.REJECTED_SUFFIX).exists());
+        assertEquals(0, replay.getRejectedEvents());
+    }
+
+    @Test
+    public void testTooLargeBatchIsSplit() throws Exception {
+        File directory = Files.createTempDirectory("deadletter").toFile();
+        deadLetters(directory, "{\"event\":\"one\"}", "{\"event\":\"two\"}", "{\"event\":\"three\"}", "{\"event\":\"four\"}");
+        maxBodyLength = 40;
+
+        DeadLetterReplay replay = new DeadLetterReplay(url, "token", true, 1, 1024 * 1024);
+        assertTrue(replay.replayDirectory(directory));
+
+        assertEquals(4, received.size());
+        assertEquals(4, replay.getReplayedEvents());
+        assertEquals(0, replay.getRejectedEvents());
+    }
+}
@@ -0,0 +1,89 @@
+package com.graylog.splunk.output.deadletter;
+
+import com.google.gson.Gson;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestDeadLetterWriter {
+
+    @Test
+    public void testWriteAndRoll() throws IOException {
+        File directory = Files.createTempDirectory("deadletter").toFile();
+        DeadLetterWriter writer = new DeadLetterWriter(directory, "hec-deadletter-test", 1, 60000);
+
+        writer.write("{\"event\":\"first\"}\n", 503, "Unexpected HTTP response status 503", 1);
+        writer.write("{\"event\":\"second\"}\n", 0, "Error while posting stream to HEC endpoint", 1);
+        writer.close();
+
+        File[] files = directory.listFiles();
+        Arrays.sort(files);
+        assertEquals(2, files.length);
+
+        List<String> lines = Files.readAllLines(files[0].toPath(), StandardCharsets.UTF_8);
+        assertEquals(1, lines.size());
+        DeadLetterRecord record = new Gson().fromJson(lines.get(0), DeadLetterRecord.class);
+        assertEquals(503, record.status);
+        assertEquals("{\"event\":\"first\"}\n", record.payload);
+        assertEquals(true, files[1].getName().endsWith(DeadLetterWriter.FILE_SUFFIX));
+    }
+
+    @Test
+    public void testRecoverActiveFiles() throws IOException {
+        File directory = Files.createTempDirectory("deadletter").toFile();
+        File orphan = new File(directory, "hec-deadletter-test-0000000000001-0000" + DeadLetterWriter.FILE_SUFFIX + DeadLetterWriter.ACTIVE_SUFFIX);
+        File other = new File(directory, "hec-deadletter-other-0000000000001-0000" + DeadLetterWriter.FILE_SUFFIX + DeadLetterWriter.ACTIVE_SUFFIX);
+        Files.write(orphan.toPath(), "{}\n".getBytes(StandardCharsets.UTF_8));
+        Files.write(other.toPath(), "{}\n".getBytes(StandardCharsets.UTF_8));
+
+        new DeadLetterWriter(directory, "hec-deadletter-test", 1024, 60000);
+
+        assertFalse(orphan.exists());
+        assertTrue(new File(directory, "hec-deadletter-test-0000000000001-0000" + DeadLetterWriter.FILE_SUFFIX).exists());
+        assertTrue(other.exists());
+    }
+
+    @Test
+    public void testLiveActiveFileIsNotRecovered() throws IOException {
+        File directory = Files.createTempDirectory("deadletter").toFile();
+        DeadLetterWriter live = new DeadLetterWriter(directory, "hec-deadletter-test", 1024 * 1024, 60000);
+        live.write("{\"event\":\"first\"}\n", 503, "Unexpected HTTP response status 503", 1);
+
+        DeadLetterWriter other = new DeadLetterWriter(directory, "hec-deadletter-test", 1024 * 1024, 60000);
+        other.write("{\"event\":\"second\"}\n", 503, "Unexpected HTTP response status 503", 1);
+
+        File[] active = directory.listFiles();
+        assertEquals(2, active.length);
+        for (File file : active) {
+            assertTrue(file.getName().endsWith(DeadLetterWriter.FILE_SUFFIX + DeadLetterWriter.ACTIVE_SUFFIX));
+        }
+
+        live.close();
+        other.close();
+        assertEquals(2, directory.listFiles().length);
+        for (File file : directory.listFiles()) {
+            assertTrue(file.getName().endsWith(DeadLetterWriter.FILE_SUFFIX));
+        }
+    }
+
+    @Test
+    public void testRollOnInterval() throws IOException {
+        File directory = Files.createTempDirectory("deadletter").toFile();
+        DeadLetterWriter writer = new DeadLetterWriter(directory, "hec-deadletter-test", 1024 * 1024, 0);
+
+        writer.write("{\"event\":\"first\"}\n", 503, "Unexpected HTTP response status 503", 1);
+
+        File[] files = directory.listFiles();
+        assertEquals(1, files.length);
+        assertTrue(files[0].getName().endsWith(DeadLetterWriter.FILE_SUFFIX));
+    }
+}
@@ -0,0 +1,101 @@
+package com.graylog.splunk.output.lanes;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.jupiter.api.Test;
+import org.graylog2.plugin.Message;
+import org.joda.time.DateTime;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestPriorityLanes {
+
+    private static Message message(String severity) {
+        Message message = new Message("EA Graylog Test", "EA Graylog Test", new DateTime());
+        message.addField("severity", severity);
+        return message;
+    }
+
+    @Test
+    public void testRouting() {
+        PriorityLanes lanes = PriorityLanes.parse("security:8:severity=critical;bulk:1", 10);
+
+        assertEquals("security", lanes.route(message("critical")).getName());
+        assertEquals("bulk", lanes.route(message("info")).getName());
+    }
+
+    @Test
+    public void testWeightedDrain() throws InterruptedException {
+        PriorityLanes lanes = PriorityLanes.parse("security:2:severity=critical;bulk:1", 1000);
+        for (int i = 0; i < 500; i++) {
+            lanes.put(message("info"));
+        }
+        for (int i = 0; i < 500; i++) {
+            lanes.put(message("critical"));
+        }
+
+        List<Message> batch = new ArrayList<>();
+        assertEquals(300, lanes.drainTo(batch, 300));
+
+        int critical = 0;
+        for (Message m : batch) {
+            if ("critical".equals(m.getField("severity"))) {
+                critical++;
+            }
+        }
+        assertEquals(200, critical);
+        assertEquals(300, lanes.getLanes().get(0).getQueueDepth());
+        assertEquals(400, lanes.getLanes().get(1).getQueueDepth());
+    }
+
+    @Test
+    public void testFullSheddingLaneDoesNotBlockOtherLanes() {
+        final PriorityLanes lanes = PriorityLanes.parse("security:8:severity=critical;bulk:1", 2, Collections.singleton("bulk"));
+
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+            assertTrue(lanes.put(message("info")));
+            assertTrue(lanes.put(message("info")));
+            assertFalse(lanes.put(message("info")));
+            assertTrue(lanes.put(message("critical")));
+        });
+
+        assertEquals(1, lanes.getLanes().get(0).getQueueDepth());
+        assertEquals(2, lanes.getLanes().get(1).getQueueDepth());
+        assertEquals(0, lanes.getLanes().get(0).getShed().getCount());
+        assertEquals(1, lanes.getLanes().get(1).getShed().getCount());
+    }
+
+    @Test
+    public void testMetricsReplaceStaleRegistration() {
+        MetricRegistry registry = new MetricRegistry();
+        PriorityLanes stale = PriorityLanes.parse("bulk:1", 10);
+        PriorityLanes current = PriorityLanes.parse("bulk:1", 10);
+
+        stale.registerMetrics(registry, "out");
+        current.registerMetrics(registry, "out");
+        assertSame(current.getLanes().get(0).getLatency(), registry.getTimers().get("out.lane.bulk.latency"));
+
+        stale.removeMetrics(registry);
+        assertEquals(3, registry.getMetrics().size());
+
+        current.removeMetrics(registry);
+        assertTrue(registry.getMetrics().isEmpty());
+    }
+
+    @Test
+    public void testInvalidSpec() {
+        assertThrows(IllegalArgumentException.class, () -> PriorityLanes.parse("security", 10));
+        assertThrows(IllegalArgumentException.class, () -> PriorityLanes.parse("security:0", 10));
+        assertThrows(IllegalArgumentException.class, () -> PriorityLanes.parse("a:1;a:2", 10));
+        assertThrows(IllegalArgumentException.class, () -> PriorityLanes.parse("a:1", 10, Collections.singleton("b")));
+    }
+}